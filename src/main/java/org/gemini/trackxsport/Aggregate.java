@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * {@code Aggregate} holds the totals of one or more tracks, see
+ * {@link AggregateStore}.
+ */
+public final class Aggregate {
+
+    private int tracks;
+    private long distance;
+    private long duration;
+    private long calories;
+    private final long[] zones;
+
+    Aggregate(final int zoneCount) {
+        this.zones = new long[zoneCount];
+    }
+
+    /**
+     * Compute the totals of a single track.
+     *
+     * @param calories calories as in {@link TrackDescriptor#getCalories()}.
+     * @param segments the segments of the track.
+     * @param zones lower bounds of the heart rate zones, ascending.
+     */
+    static Aggregate of(final int calories,
+            final Iterator<TrackSegment> segments, final int[] zones) {
+        final Aggregate result = new Aggregate(zones.length);
+        result.tracks = 1;
+        result.calories = calories;
+
+        double distance = 0;
+        Waypoint previous = null;
+        while (segments.hasNext()) {
+            final Iterator<Waypoint> waypoints = segments.next().waypoints();
+            while (waypoints.hasNext()) {
+                final Waypoint wp = waypoints.next();
+                if (previous != null)
+                    distance += GeoUtil.distance(
+                            previous.getLatitude(), previous.getLongitude(),
+                            wp.getLatitude(), wp.getLongitude());
+                result.duration += wp.getDelay();
+
+                int zone = zones.length - 1;
+                while (zone > 0 && wp.getHeartRate() < zones[zone])
+                    --zone;
+                result.zones[zone] += wp.getDelay();
+
+                previous = wp;
+            }
+        }
+
+        result.distance = Math.round(distance);
+        return result;
+    }
+
+    /** Get the number of tracks included. */
+    public int getTrackCount() {
+        return tracks;
+    }
+
+    /** Get the total distance, in meters. */
+    public long getDistance() {
+        return distance;
+    }
+
+    /** Get the total duration, in seconds. */
+    public long getDuration() {
+        return duration;
+    }
+
+    public long getCalories() {
+        return calories;
+    }
+
+    /** Get the time spent in heart rate zone {@code zone}, in seconds. */
+    public long getZoneTime(final int zone) {
+        return zones[zone];
+    }
+
+    public int getZoneCount() {
+        return zones.length;
+    }
+
+    /** Add ({@code sign} 1) or subtract ({@code sign} -1) {@code other}. */
+    void add(final Aggregate other, final int sign) {
+        tracks += sign * other.tracks;
+        distance += sign * other.distance;
+        duration += sign * other.duration;
+        calories += sign * other.calories;
+        for (int i = 0; i < zones.length; i++)
+            zones[i] += sign * other.zones[i];
+    }
+
+    boolean isEmpty() {
+        return tracks == 0;
+    }
+
+    /** Format as tab separated fields, read back with {@link #parse}. */
+    String format() {
+        final StringBuilder buffer = new StringBuilder();
+        buffer.append(tracks).append('\t').append(distance).append('\t')
+                .append(duration).append('\t').append(calories);
+        for (final long zone: zones)
+            buffer.append('\t').append(zone);
+
+        return buffer.toString();
+    }
+
+    static Aggregate parse(final String[] fields, final int offset,
+            final int zoneCount) {
+        final Aggregate result = new Aggregate(zoneCount);
+        result.tracks = Integer.parseInt(fields[offset]);
+        result.distance = Long.parseLong(fields[offset + 1]);
+        result.duration = Long.parseLong(fields[offset + 2]);
+        result.calories = Long.parseLong(fields[offset + 3]);
+        for (int i = 0; i < zoneCount; i++)
+            result.zones[i] = Long.parseLong(fields[offset + 4 + i]);
+
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof Aggregate))
+            return false;
+
+        final Aggregate other = (Aggregate) obj;
+        return tracks == other.tracks && distance == other.distance
+                && duration == other.duration && calories == other.calories
+                && Arrays.equals(zones, other.zones);
+    }
+
+    @Override
+    public int hashCode() {
+        return format().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d tracks, %.1fkm, %dh%02dm, %dcal, zones %s",
+                tracks, distance / 1000.0, duration / 3600,
+                duration / 60 % 60, calories, Arrays.toString(zones));
+    }
+}
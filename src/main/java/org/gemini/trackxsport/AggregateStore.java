@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * {@code AggregateStore} maintains weekly and monthly totals (see
+ * {@link Aggregate}) of the exported tracks, per device, in a local file.
+ *
+ * <p>The totals are updated each time a track is added, so querying them
+ * costs O(buckets), instead of reprocessing all the tracks. The
+ * contribution of each track is remembered, keyed by device, track
+ * identifier and begin time. Thus, adding the same track again changes
+ * nothing, and adding a track which has grown since replaces its
+ * previous contribution.
+ *
+ * <p>The file is plain text, one tab separated record per line:
+ * <pre><tt>
+ *   Z  zone lower bounds, comma separated
+ *   T  device  begin time  track id  totals...
+ *   B  device  period  bucket  totals...
+ * </tt></pre>
+ * where the totals are: number of tracks, distance (m), duration (s),
+ * calories, and the seconds spent in each heart rate zone.
+ */
+public final class AggregateStore {
+
+    /** Calendar bucket of the totals. */
+    public enum Period {
+
+        WEEK {
+            @Override
+            public String bucket(final GregorianCalendar time) {
+                final GregorianCalendar iso = new GregorianCalendar();
+                iso.setFirstDayOfWeek(Calendar.MONDAY);
+                iso.setMinimalDaysInFirstWeek(4);
+                iso.setTime(time.getTime());
+                return String.format("%04d-W%02d", iso.getWeekYear(),
+                        iso.get(Calendar.WEEK_OF_YEAR));
+            }
+        },
+
+        MONTH {
+            @Override
+            public String bucket(final GregorianCalendar time) {
+                return String.format("%04d-%02d", time.get(Calendar.YEAR),
+                        time.get(Calendar.MONTH) + 1);
+            }
+        };
+
+        /** Get the label of the bucket including {@code time}, e.g.
+         * "2016-W31" or "2016-08". Labels sort chronologically. */
+        public abstract String bucket(GregorianCalendar time);
+    }
+
+    /** Lower bounds of the default heart rate zones, 1/min, corresponding
+     * to 60, 70, 80 and 90 percent of maximum heart rate 190. */
+    public static final int[] DEFAULT_ZONES = { 0, 114, 133, 152, 171 };
+
+    private static final String SEPARATOR = "\t";
+
+    private final File file;
+    private final int[] zones;
+
+    /** Contributions by device, begin time and track identifier. */
+    private final Map<String, Aggregate> tracks = new TreeMap<>();
+
+    /** Totals by device, period and bucket. */
+    private final SortedMap<String, Aggregate> buckets = new TreeMap<>();
+
+    public AggregateStore(final File file) throws IOException {
+        this(file, DEFAULT_ZONES);
+    }
+
+    /**
+     * Open the store, loading {@code file} if it exists.
+     *
+     * @param zones lower bounds of the heart rate zones, ascending. Must
+     *      match the bounds the existing file was created with.
+     */
+    public AggregateStore(final File file, final int[] zones)
+            throws IOException {
+        this.file = file;
+        this.zones = zones.clone();
+
+        if (file.exists())
+            load();
+    }
+
+    /**
+     * Add a track to the totals, or update its contribution if it has
+     * changed since it was last added.
+     *
+     * @param device identifier of the device the track was downloaded from.
+     * @return {@code false} if the track was already included as such.
+     */
+    public boolean add(final String device, final int trackId,
+            final GregorianCalendar beginTime, final int calories,
+            final Iterator<TrackSegment> segments) throws IOException {
+        final Aggregate contribution =
+                Aggregate.of(calories, segments, zones);
+        final String key = key(device, String.format("%1$tFT%1$tT",
+                beginTime), String.valueOf(trackId));
+
+        final Aggregate previous = tracks.put(key, contribution);
+        if (contribution.equals(previous))
+            return false;
+
+        for (final Period period: Period.values()) {
+            final String bucket = key(device, period.name(),
+                    period.bucket(beginTime));
+            final Aggregate total = buckets.computeIfAbsent(bucket,
+                    b -> new Aggregate(zones.length));
+            if (previous != null)
+                total.add(previous, -1);
+            total.add(contribution, 1);
+        }
+
+        save();
+        return true;
+    }
+
+    /** Get the totals of {@code device} per bucket, in chronological
+     * order. */
+    public SortedMap<String, Aggregate> query(final String device,
+            final Period period) {
+        return query(device, period, "", "\uffff");
+    }
+
+    /**
+     * Get the totals of {@code device} for buckets {@code from} to
+     * {@code to} (inclusive), in chronological order.
+     *
+     * @param from first bucket, e.g. {@code period.bucket(time)}.
+     * @param to last bucket.
+     */
+    public SortedMap<String, Aggregate> query(final String device,
+            final Period period, final String from, final String to) {
+        final String prefix = key(device, period.name(), "");
+        final SortedMap<String, Aggregate> result = new TreeMap<>();
+        for (final Map.Entry<String, Aggregate> entry: buckets
+                .subMap(prefix + from, prefix + to + "\0").entrySet())
+            result.put(entry.getKey().substring(prefix.length()),
+                    entry.getValue());
+
+        return result;
+    }
+
+    private static String key(final String device, final String a,
+            final String b) {
+        return device + SEPARATOR + a + SEPARATOR + b;
+    }
+
+    private void load() throws IOException {
+        try (final BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file),
+                        StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.split(SEPARATOR);
+                switch (fields[0]) {
+                    case "Z":
+                        if (!fields[1].equals(formatZones()))
+                            throw new IOException(String.format(
+                                    "%s: zones %s differ from %s", file,
+                                    fields[1], formatZones()));
+                        break;
+
+                    case "T":
+                        tracks.put(key(fields[1], fields[2], fields[3]),
+                                Aggregate.parse(fields, 4, zones.length));
+                        break;
+
+                    case "B":
+                        buckets.put(key(fields[1], fields[2], fields[3]),
+                                Aggregate.parse(fields, 4, zones.length));
+                        break;
+
+                    default:
+                        throw new IOException(String.format(
+                                "%s: unknown record '%s'", file, fields[0]));
+                }
+            }
+        }
+
+        catch (final RuntimeException ex) {
+            throw new IOException(file + ": malformed", ex);
+        }
+    }
+
+    /** Write to a temporary file first, so that an interrupted save won't
+     * lose the totals. */
+    private void save() throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try (final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            out.print("Z" + SEPARATOR + formatZones() + "\n");
+            for (final Map.Entry<String, Aggregate> entry: tracks.entrySet())
+                out.print("T" + SEPARATOR + entry.getKey() + SEPARATOR
+                        + entry.getValue().format() + "\n");
+            for (final Map.Entry<String, Aggregate> entry: buckets.entrySet())
+                if (!entry.getValue().isEmpty())
+                    out.print("B" + SEPARATOR + entry.getKey() + SEPARATOR
+                            + entry.getValue().format() + "\n");
+            if (out.checkError())
+                throw new IOException("Writing " + temp + " failed");
+        }
+
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String formatZones() {
+        final String zones = Arrays.toString(this.zones);
+        return zones.substring(1, zones.length() - 1).replace(" ", "");
+    }
+}
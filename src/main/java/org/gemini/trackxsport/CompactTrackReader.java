@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@code CompactTrackReader} reads tracks written by
+ * {@link CompactTrackWriter}. Segments are decoded one block at a time,
+ * either in order through {@link #segments()}, or randomly through
+ * {@link #segment(int)}.
+ *
+ * <p>Decoded segments are laid out exactly as received from the device, so
+ * they can be fed as such to e.g. {@link GpxWriter}. The time of the last
+ * waypoint in the segment header is not archived, and is left zero.
+ */
+public final class CompactTrackReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final byte[] header = new byte[CompactTrackWriter.HDR_LEN];
+
+    /** For each segment: number, waypoint count, block offset and length,
+     * and seconds from track begin to the last waypoint. */
+    private final long[][] index;
+
+    public CompactTrackReader(final File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            this.file.readFully(header);
+            if (!isMagic(header, 0))
+                throw new IOException("Not a compact track: " + file);
+            if (header[CompactTrackWriter.HDR_VERSION_OFFS]
+                    != CompactTrackWriter.VERSION)
+                throw new IOException(String.format(
+                        "%s: unsupported version %d", file,
+                        header[CompactTrackWriter.HDR_VERSION_OFFS]));
+
+            final long length = this.file.length();
+            final byte[] trailer = new byte[CompactTrackWriter.TRAILER_LEN];
+            this.file.seek(length - trailer.length);
+            this.file.readFully(trailer);
+            if (!isMagic(trailer, 8))
+                throw new IOException("Truncated compact track: " + file);
+
+            final long indexOffset = (DataUtil.readInt32(trailer, 0)
+                    & 0xffffffffL)
+                    | ((long) DataUtil.readInt32(trailer, 4) << 32);
+            final ByteBuffer in = ByteBuffer.wrap(read(indexOffset,
+                    (int) (length - trailer.length - indexOffset)));
+            index = new long[(int) DataUtil.readVarLong(in)][5];
+            for (final long[] entry: index)
+                for (int i = 0; i < entry.length; i++)
+                    entry[i] = DataUtil.readVarLong(in);
+        }
+
+        catch (final IOException | RuntimeException ex) {
+            this.file.close();
+            throw ex;
+        }
+    }
+
+    public int getTrackId() {
+        return DataUtil.readInt32(header, CompactTrackWriter.HDR_TRACK_OFFS);
+    }
+
+    public GregorianCalendar getTrackBeginTime() {
+        final int offs = CompactTrackWriter.HDR_TIME_OFFS;
+        return new GregorianCalendar(
+                header[offs] + 2000,
+                header[offs + 1] - 1,
+                header[offs + 2],
+                header[offs + 3],
+                header[offs + 4],
+                header[offs + 5]);
+    }
+
+    public int getCalories() {
+        return DataUtil.readInt32(header, CompactTrackWriter.HDR_CALS_OFFS);
+    }
+
+    public int getSegmentCount() {
+        return index.length;
+    }
+
+    /** Get the total number of waypoints, without decoding any blocks. */
+    public int getWaypointCount() {
+        int count = 0;
+        for (final long[] entry: index)
+            count += (int) entry[1];
+
+        return count;
+    }
+
+    /**
+     * Get a {@link TrackTimeIndex} for seeking by time. The index is built
+     * from the segment index, so no blocks are decoded until visited.
+     */
+    public TrackTimeIndex timeIndex() {
+        final int[] ends = new int[index.length];
+        for (int i = 0; i < ends.length; i++)
+            ends[i] = (int) index[i][4];
+
+        return new TrackTimeIndex(this, new TrackSegment[index.length], ends);
+    }
+
+    /** Read and decode the {@code i}'th segment of the track. */
+    public TrackSegment segment(final int i) throws IOException {
+        final long[] entry = index[i];
+        final ByteBuffer in = ByteBuffer.wrap(read(entry[2], (int) entry[3]));
+
+        final int count = (int) DataUtil.readVarLong(in);
+        final int length = TrackSegment.WAYPOINTS + count * Waypoint.SIZE + 2;
+        final byte[] data = new byte[length];
+        data[0] = 0x48;
+        data[1] = 0x59;
+        data[2] = 0x03;
+        data[3] = 0x02;
+        DataUtil.writeUInt16(data, DataUtil.MESSAGE_SIZE_OFFS,
+                length - DataUtil.MESSAGE_SIZE_PADDING);
+        data[TrackSegment.TRACK_ID] = (byte) getTrackId();
+        data[TrackSegment.SEGMENT_NO] = (byte) entry[0];
+        DataUtil.writeUInt16(data, TrackSegment.WAYPOINT_COUNT, count);
+
+        long value = 0;
+        for (int n = 0; n < count; n++)
+            DataUtil.writeFloat(data, waypoint(n, Waypoint.LONGITUDE),
+                    (float) ((value += DataUtil.unZigZag(
+                            DataUtil.readVarLong(in)))
+                        / CompactTrackWriter.COORD_SCALE));
+        value = 0;
+        for (int n = 0; n < count; n++)
+            DataUtil.writeFloat(data, waypoint(n, Waypoint.LATITUDE),
+                    (float) ((value += DataUtil.unZigZag(
+                            DataUtil.readVarLong(in)))
+                        / CompactTrackWriter.COORD_SCALE));
+        decodeDelta(in, data, count, Waypoint.SPEED);
+        decodeDelta(in, data, count, Waypoint.ALTITUDE);
+        for (int n = 0; n < count; n++)
+            DataUtil.writeUInt16(data, waypoint(n, Waypoint.ELAPSED),
+                    (int) DataUtil.readVarLong(in));
+        decodeDelta(in, data, count, Waypoint.HEARTRATE);
+
+        return new TrackSegment(data, 0, length);
+    }
+
+    /**
+     * Get an iterator decoding the segments in order. I/O errors are
+     * rethrown as {@link UncheckedIOException}.
+     */
+    public Iterator<TrackSegment> segments() {
+        return new Iterator<TrackSegment>() {
+
+            private int current = 0;
+
+            @Override
+            public boolean hasNext() {
+                return current < index.length;
+            }
+
+            @Override
+            public TrackSegment next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                try {
+                    return segment(current++);
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static int waypoint(final int n, final int field) {
+        return TrackSegment.WAYPOINTS + n * Waypoint.SIZE + field;
+    }
+
+    private static void decodeDelta(final ByteBuffer in, final byte[] data,
+            final int count, final int field) {
+        long value = 0;
+        for (int n = 0; n < count; n++) {
+            value += DataUtil.unZigZag(DataUtil.readVarLong(in));
+            DataUtil.writeUInt16(data, waypoint(n, field), (int) value);
+        }
+    }
+
+    private static boolean isMagic(final byte[] data, final int offset) {
+        return Arrays.equals(CompactTrackWriter.MAGIC,
+                Arrays.copyOfRange(data, offset,
+                        offset + CompactTrackWriter.MAGIC.length));
+    }
+
+    private byte[] read(final long offset, final int length)
+            throws IOException {
+        final byte[] buffer = new byte[length];
+        synchronized (file) {
+            file.seek(offset);
+            file.readFully(buffer);
+        }
+
+        return buffer;
+    }
+}
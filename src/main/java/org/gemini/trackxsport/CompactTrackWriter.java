@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@code CompactTrackWriter} streams a decoded {@link Track} into a compact,
+ * columnar binary file, to be read back with {@link CompactTrackReader}.
+ * Only one {@link TrackSegment} at a time is held in memory.
+ *
+ * <h1>File format</h1>
+ *
+ * All fixed size integers are little endian, like in the device protocol.
+ * {@code varint} is an unsigned LEB128 integer, {@code zigzag} a signed
+ * value mapped to {@code varint} (see {@link DataUtil#zigZag(long)}).
+ *
+ * <pre><tt>
+ *  | offset | type   | description
+ *  |--------|--------|------------------------
+ *  | 0x00   | byte[4]| fixed "TXSC"
+ *  | 0x04   | byte   | format version, currently 2
+ *  | 0x05   | int32  | track identifier
+ *  | 0x09   | byte[6]| track begin time as in {@link TrackDescriptor}:
+ *  |                   years after 2000, month 1..12, day, hours, minutes,
+ *  |                   seconds
+ *  | 0x0f   | int32  | total calories
+ *  | 0x13   |        | first segment block... (see below)
+ *  |        |        | segment index (see below)
+ *  | -0x0c  | int64  | file offset of the segment index
+ *  | -0x04  | byte[4]| fixed "TXSC"
+ * </tt></pre>
+ *
+ * Each segment block holds the waypoints column by column. Coordinates are
+ * stored as fixed point integers of 1e-7 degrees. For coordinates of at
+ * least 1 degree (in absolute value), this is finer than the resolution of
+ * the {@code float32} sent by the device, so they decode to the very same
+ * value. Closer to the equator or the Greenwich meridian, the encoding is
+ * lossy: the decoded value may differ by at most 6e-8 degrees (about 7 mm)
+ * after rounding back to {@code float32}. Columns marked as delta are
+ * stored as difference to the previous waypoint of the same block, so each
+ * block can be decoded on its own:
+ * <pre><tt>
+ *  | type      | description
+ *  |-----------|------------------------
+ *  | varint    | number of waypoints, n
+ *  | zigzag[n] | longitude, delta
+ *  | zigzag[n] | latitude, delta
+ *  | zigzag[n] | speed, delta
+ *  | zigzag[n] | altitude, delta
+ *  | varint[n] | time lapsed since last waypoint, in seconds
+ *  | zigzag[n] | heartbeat, delta
+ * </tt></pre>
+ *
+ * The segment index allows random access to the blocks:
+ * <pre><tt>
+ *  | type      | description
+ *  |-----------|------------------------
+ *  | varint    | number of segments
+ *  |           | for each segment:
+ *  | varint    |   segment number
+ *  | varint    |   number of waypoints
+ *  | varint    |   file offset of the block
+ *  | varint    |   length of the block in bytes
+ *  | varint    |   seconds from track begin to the last waypoint, see
+ *  |           |   {@link TrackTimeIndex}
+ * </tt></pre>
+ */
+public final class CompactTrackWriter implements Closeable {
+
+    static final byte[] MAGIC = { 'T', 'X', 'S', 'C' };
+    static final int VERSION = 2;
+
+    /** Field offsets */
+    static final int
+            HDR_VERSION_OFFS = 0x04,    /* byte */
+            HDR_TRACK_OFFS = 0x05,      /* int32 */
+            HDR_TIME_OFFS = 0x09,       /* byte[6] */
+            HDR_CALS_OFFS = 0x0f,       /* int32 */
+            HDR_LEN = 0x13,
+            TRAILER_LEN = 0x0c;
+
+    /** Fixed point scale of coordinates, units per degree. */
+    static final double COORD_SCALE = 1e7;
+
+    private final OutputStream out;
+    private final int trackId;
+    private final List<long[]> index = new ArrayList<>();
+    private long position;
+    private long elapsed;
+
+    public CompactTrackWriter(final OutputStream out,
+            final TrackDescriptor descriptor) throws IOException {
+        this(out, descriptor.getTrackId(), descriptor.getTrackBeginTime(),
+                descriptor.getCalories());
+    }
+
+    public CompactTrackWriter(final OutputStream out, final int trackId,
+            final GregorianCalendar beginTime, final int calories)
+            throws IOException {
+        this.out = out;
+        this.trackId = trackId;
+
+        final byte[] header = new byte[HDR_LEN];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[HDR_VERSION_OFFS] = VERSION;
+        DataUtil.writeInt32(header, HDR_TRACK_OFFS, trackId);
+        header[HDR_TIME_OFFS] =
+                (byte) (beginTime.get(GregorianCalendar.YEAR) - 2000);
+        header[HDR_TIME_OFFS + 1] =
+                (byte) (beginTime.get(GregorianCalendar.MONTH) + 1);
+        header[HDR_TIME_OFFS + 2] =
+                (byte) beginTime.get(GregorianCalendar.DAY_OF_MONTH);
+        header[HDR_TIME_OFFS + 3] =
+                (byte) beginTime.get(GregorianCalendar.HOUR_OF_DAY);
+        header[HDR_TIME_OFFS + 4] =
+                (byte) beginTime.get(GregorianCalendar.MINUTE);
+        header[HDR_TIME_OFFS + 5] =
+                (byte) beginTime.get(GregorianCalendar.SECOND);
+        DataUtil.writeInt32(header, HDR_CALS_OFFS, calories);
+        write(header);
+    }
+
+    public int getTrackId() {
+        return trackId;
+    }
+
+    /** Encode all segments of {@code track}. */
+    public CompactTrackWriter writeTrack(final Track track) throws IOException {
+        final Iterator<TrackSegment> segments = track.segments();
+        while (segments.hasNext())
+            writeSegment(segments.next());
+
+        return this;
+    }
+
+    public CompactTrackWriter writeSegment(final TrackSegment segment)
+            throws IOException {
+        final ByteArrayOutputStream lon = new ByteArrayOutputStream();
+        final ByteArrayOutputStream lat = new ByteArrayOutputStream();
+        final ByteArrayOutputStream speed = new ByteArrayOutputStream();
+        final ByteArrayOutputStream alt = new ByteArrayOutputStream();
+        final ByteArrayOutputStream delay = new ByteArrayOutputStream();
+        final ByteArrayOutputStream hr = new ByteArrayOutputStream();
+
+        long prevLon = 0, prevLat = 0, prevSpeed = 0, prevAlt = 0, prevHr = 0;
+        int count = 0;
+        final Iterator<Waypoint> waypoints = segment.waypoints();
+        while (waypoints.hasNext()) {
+            final Waypoint wp = waypoints.next();
+            final long x = Math.round(wp.getLongitude() * COORD_SCALE);
+            final long y = Math.round(wp.getLatitude() * COORD_SCALE);
+            DataUtil.writeVarLong(lon, DataUtil.zigZag(x - prevLon));
+            DataUtil.writeVarLong(lat, DataUtil.zigZag(y - prevLat));
+            DataUtil.writeVarLong(speed,
+                    DataUtil.zigZag(wp.getSpeed() - prevSpeed));
+            DataUtil.writeVarLong(alt,
+                    DataUtil.zigZag(wp.getAltitude() - prevAlt));
+            DataUtil.writeVarLong(delay, wp.getDelay());
+            elapsed += wp.getDelay();
+            DataUtil.writeVarLong(hr,
+                    DataUtil.zigZag(wp.getHeartRate() - prevHr));
+            prevLon = x;
+            prevLat = y;
+            prevSpeed = wp.getSpeed();
+            prevAlt = wp.getAltitude();
+            prevHr = wp.getHeartRate();
+            ++count;
+        }
+
+        final ByteArrayOutputStream block = new ByteArrayOutputStream(
+                lon.size() + lat.size() + speed.size() + alt.size()
+                        + delay.size() + hr.size() + 5);
+        DataUtil.writeVarLong(block, count);
+        lon.writeTo(block);
+        lat.writeTo(block);
+        speed.writeTo(block);
+        alt.writeTo(block);
+        delay.writeTo(block);
+        hr.writeTo(block);
+
+        index.add(new long[] {
+            segment.getSegmentNo(), count, position, block.size(), elapsed
+        });
+        write(block.toByteArray());
+
+        return this;
+    }
+
+    /** Write the segment index and close the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        try {
+            final long indexOffset = position;
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataUtil.writeVarLong(buffer, index.size());
+            for (final long[] entry: index)
+                for (final long value: entry)
+                    DataUtil.writeVarLong(buffer, value);
+
+            final byte[] trailer = new byte[TRAILER_LEN];
+            DataUtil.writeInt32(trailer, 0, (int) indexOffset);
+            DataUtil.writeInt32(trailer, 4, (int) (indexOffset >>> 32));
+            System.arraycopy(MAGIC, 0, trailer, 8, MAGIC.length);
+            buffer.write(trailer);
+
+            write(buffer.toByteArray());
+            out.flush();
+        }
+
+        finally {
+            out.close();
+        }
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+        out.write(bytes);
+        position += bytes.length;
+    }
+}
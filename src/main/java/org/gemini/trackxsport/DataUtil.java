@@ -15,6 +15,8 @@
  */
 package org.gemini.trackxsport;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import jssc.SerialPort;
@@ -73,6 +75,53 @@ public final class DataUtil {
     public static float readFloat(final byte[] b, int offset) {
         return Float.intBitsToFloat(readInt32(b, offset));
     }
+
+    public static void writeUInt16(final byte[] data, int offset,
+            final int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+    }
+
+    public static void writeInt32(final byte[] b, int offset, final int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+        b[offset + 2] = (byte) (value >>> 16);
+        b[offset + 3] = (byte) (value >>> 24);
+    }
+
+    public static void writeFloat(final byte[] b, int offset, final float value) {
+        writeInt32(b, offset, Float.floatToIntBits(value));
+    }
+
+    /** Map signed values to unsigned so that small magnitudes stay small. */
+    public static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Write {@code value} as unsigned LEB128 varint, 7 bits per byte. */
+    public static void writeVarLong(final ByteArrayOutputStream out,
+            long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static long readVarLong(final ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.get() & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
     
     public static StringBuilder dump(final StringBuilder buffer,
             final byte[] data, final int offset, final int length) {
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+public final class GeoUtil {
+
+    /** Mean earth radius, in meters. */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    /** Length of one degree of latitude, in meters. */
+    public static final double METERS_PER_DEGREE =
+            EARTH_RADIUS * Math.PI / 180;
+
+    /** Get the great-circle distance between two points, in meters. */
+    public static double distance(final double lat1, final double lon1,
+            final double lat2, final double lon2) {
+        final double dLat = Math.toRadians(lat2 - lat1);
+        final double dLon = Math.toRadians(lon2 - lon1);
+        final double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1))
+                    * Math.cos(Math.toRadians(lat2))
+                    * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private GeoUtil() {
+        throw new AssertionError("Oops, not to be instantiated!");
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@code GpxExport} writes a {@link Track} into a GPX file, updating the
+ * file in place if it already holds an earlier download of the same track.
+ *
+ * <p>As the device always returns the most recent track (see {@link Track}),
+ * downloading during or after an activity repeatedly returns the same track,
+ * possibly with new segments, or more waypoints in the last segment. To
+ * avoid rewriting the whole file each time, the byte offset after each
+ * segment is recorded with a content hash of the segment into a state file
+ * next to the GPX file. When the same track (same identifier and begin time)
+ * is exported again, the GPX file is truncated after the leading segments
+ * with unchanged content, and only the rest is appended, followed by the
+ * closing tags.
+ *
+ * <p>The state file holds the track identifier, begin time and the length
+ * of the GPX file, the offset of the first segment, and the content hash
+ * and end offset of each segment, tab separated. If the GPX file has been
+ * changed since, or the state is missing or unreadable, the file is
+ * rewritten from the beginning.
+ */
+public final class GpxExport {
+
+    /** File name suffix of the state file, appended to the GPX file name. */
+    public static final String STATE_SUFFIX = ".state";
+
+    private static final String SEPARATOR = "\t";
+
+    private final File gpx;
+    private final File stateFile;
+
+    public GpxExport(final File gpx) {
+        this.gpx = gpx;
+        this.stateFile = new File(gpx.getPath() + STATE_SUFFIX);
+    }
+
+    /**
+     * Export the track, appending to the existing file when possible.
+     *
+     * @param beginTime begin time of the track, not modified.
+     * @return number of segments written, i.e. not already in the file.
+     */
+    public int export(final int trackId, final GregorianCalendar beginTime,
+            final Iterator<TrackSegment> segments) throws IOException {
+        final List<TrackSegment> list = new ArrayList<>();
+        final List<String> hashes = new ArrayList<>();
+        while (segments.hasNext()) {
+            final TrackSegment segment = segments.next();
+            list.add(segment);
+            hashes.add(hash(segment));
+        }
+
+        final String header = String.format("%d%s%3$tFT%3$tT",
+                trackId, SEPARATOR, beginTime);
+        final List<String[]> state = readState(header);
+
+        // state holds the offset of the first segment, and then the hash
+        // and end offset of each segment.
+        int kept = 0;
+        if (state != null)
+            while (kept < list.size() && kept + 1 < state.size()
+                    && state.get(kept + 1)[0].equals(hashes.get(kept)))
+                ++kept;
+
+        final GregorianCalendar time = (GregorianCalendar) beginTime.clone();
+        for (int i = 0; i < kept; i++)
+            for (int n = 0; n < list.get(i).countWaypoints(); n++)
+                time.add(GregorianCalendar.SECOND,
+                        list.get(i).getWaypoint(n).getDelay());
+
+        // Remove the state first, so that an interrupted export leads to
+        // a full rewrite next time.
+        stateFile.delete();
+
+        final long[] offsets = new long[list.size() + 1];
+        final long length;
+        try (final RandomAccessFile file = new RandomAccessFile(gpx, "rw")) {
+            final FileChannel channel = file.getChannel();
+            final PrintStream out = new PrintStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel)));
+
+            final GpxWriter writer;
+            if (state == null) {
+                channel.truncate(0);
+                writer = new GpxWriter(out, time).beginTrack(trackId);
+            } else {
+                for (int i = 0; i <= kept; i++)
+                    offsets[i] = Long.parseLong(
+                            state.get(i)[state.get(i).length - 1]);
+                channel.truncate(offsets[kept]);
+                channel.position(offsets[kept]);
+                writer = GpxWriter.append(out, time);
+            }
+
+            out.flush();
+            offsets[kept] = channel.position();
+            for (int i = kept; i < list.size(); i++) {
+                writer.beginTrackSegment();
+                final Iterator<Waypoint> waypoints = list.get(i).waypoints();
+                while (waypoints.hasNext())
+                    writer.writeWaypoint(waypoints.next());
+                writer.endTrackSegment();
+
+                out.flush();
+                offsets[i + 1] = channel.position();
+            }
+
+            writer.endTrack();
+            writer.close();
+            out.flush();
+            if (out.checkError())
+                throw new IOException("Writing " + gpx + " failed");
+            length = channel.position();
+        }
+
+        try (final PrintWriter out = new PrintWriter(
+                new FileWriter(stateFile))) {
+            out.print(header + SEPARATOR + length + "\n");
+            out.print(offsets[0] + "\n");
+            for (int i = 0; i < list.size(); i++)
+                out.print(hashes.get(i) + SEPARATOR + offsets[i + 1] + "\n");
+        }
+
+        return list.size() - kept;
+    }
+
+    /**
+     * Read the state, if it's for the same track and the GPX file is intact.
+     *
+     * @return the lines after the header split into fields, or
+     *      {@code null} if the state can't be used.
+     */
+    private List<String[]> readState(final String header) {
+        if (!stateFile.exists() || !gpx.exists())
+            return null;
+
+        try (final BufferedReader in = new BufferedReader(
+                new FileReader(stateFile))) {
+            final String first = in.readLine();
+            if (first == null || !first.equals(
+                    header + SEPARATOR + gpx.length()))
+                return null;
+
+            final List<String[]> result = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.split(SEPARATOR);
+                Long.parseLong(fields[fields.length - 1]);
+                result.add(fields);
+            }
+
+            return result.isEmpty() ? null : result;
+        }
+
+        catch (final IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static String hash(final TrackSegment segment) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new AssertionError(ex);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(Waypoint.SIZE);
+        final Iterator<Waypoint> waypoints = segment.waypoints();
+        while (waypoints.hasNext()) {
+            final Waypoint wp = waypoints.next();
+            buffer.clear();
+            buffer.putFloat(wp.getLongitude()).putFloat(wp.getLatitude())
+                    .putShort((short) wp.getSpeed())
+                    .putShort((short) wp.getAltitude())
+                    .putShort((short) wp.getDelay())
+                    .putShort((short) wp.getHeartRate());
+            digest.update(buffer.array());
+        }
+
+        final StringBuilder result = new StringBuilder();
+        for (final byte b: digest.digest())
+            result.append(String.format("%02x", b));
+
+        return result.toString();
+    }
+}
@@ -37,8 +37,28 @@ public class GpxWriter {
     private final GregorianCalendar beginTime;
 
     public GpxWriter(final PrintStream out, final GregorianCalendar beginTime) {
+        this(out, beginTime, true);
+    }
+
+    /**
+     * Create a writer continuing an existing GPX document, i.e. without
+     * writing the document header. Used by {@link GpxExport}.
+     *
+     * @param out stream positioned within the track, after the last
+     *      segment written so far.
+     * @param time time of the last waypoint written so far.
+     */
+    public static GpxWriter append(final PrintStream out,
+            final GregorianCalendar time) {
+        return new GpxWriter(out, time, false);
+    }
+
+    private GpxWriter(final PrintStream out, final GregorianCalendar beginTime,
+            final boolean header) {
         this.out = out;
         this.beginTime = beginTime;
+        if (!header)
+            return;
 
         this.out.format(
                 "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n" +
@@ -15,10 +15,13 @@
  */
 package org.gemini.trackxsport;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.Map;
@@ -27,7 +30,18 @@ import jssc.SerialPortException;
 
 public class Main {        
     
+    /** File name suffix of tracks archived with {@link CompactTrackWriter}. */
+    public static final String ARCHIVE_SUFFIX = ".txs";
+
+    /** File of the weekly and monthly totals, see {@link AggregateStore}. */
+    public static final String AGGREGATES_FILE = "trackxsport.aggregates";
+
+    private static final String WINDOW_OPTION = "--window=";
+
     public static void main(final String[] args) {
+        if (args.length > 0)
+            System.exit(exportArchives(args));
+
         int status = 0;
         final SerialPort port = new SerialPort("COM4");
         try {
@@ -63,36 +77,29 @@ public class Main {
                             "YYYY-MM-dd-\'%02d.gpx\'", track.getTrackId()))
                             .format(desc.getTrackBeginTime().getTime()));
 
-                System.out.format("Creating %s...\n", gpx.getAbsoluteFile());
+                System.out.format("Exporting %s...\n", gpx.getAbsoluteFile());
                 
-                final GpxWriter out = new GpxWriter(new PrintStream(
-                        new FileOutputStream(gpx)), trackTime);
-                                
-                out.beginTrack(track.getTrackId());
-
-                int blockCnt = 0, wpTotal = 0;
-                final Iterator<TrackSegment> segments = track.segments();
-                while (segments.hasNext()) {
-                    out.beginTrackSegment();
-                    ++blockCnt;
-                    final TrackSegment segment = segments.next();
-                    
-                    int wpCount = 0;
-                    final Iterator<Waypoint> waypoints = segment.waypoints();
-                    while (waypoints.hasNext()) {
-                        ++wpCount;
-                        out.writeWaypoint(waypoints.next());
-                    }
-                    
-                    System.out.format("Block %d - %d waypoints\n", blockCnt, wpCount);
-                    wpTotal += wpCount;
-                    out.endTrackSegment();
+                System.out.format("Wrote %d new segments\n",
+                        new GpxExport(gpx).export(track.getTrackId(),
+                                trackTime, track.segments()));
+
+                final File archive = new File(gpx.getPath()
+                        .replaceFirst("\\.gpx$", ARCHIVE_SUFFIX));
+                System.out.format("Archiving to %s...\n",
+                        archive.getAbsoluteFile());
+                try (final CompactTrackWriter writer = new CompactTrackWriter(
+                        new BufferedOutputStream(
+                                new FileOutputStream(archive)), desc)) {
+                    writer.writeTrack(track);
                 }
-                
-                System.out.format("Processed %d waypoints\n", wpTotal);
-                
-                out.endTrack();
-                out.close();
+
+                final AggregateStore aggregates =
+                        new AggregateStore(new File(AGGREGATES_FILE));
+                if (aggregates.add(port.getPortName(), track.getTrackId(),
+                        desc.getTrackBeginTime(), desc.getCalories(),
+                        track.segments()))
+                    System.out.format("Updated totals in %s\n",
+                            AGGREGATES_FILE);
             }
         }
         
@@ -110,4 +117,91 @@ public class Main {
         
         System.exit(status);        
     }
+
+    /**
+     * Generate GPX for each of the given archived tracks, next to the
+     * archive. The first argument may limit the output to a time window,
+     * given as {@code --window=FROM-TO} in seconds from the track begin.
+     */
+    private static int exportArchives(final String[] args) {
+        int first = 0, from = 0, to = Integer.MAX_VALUE;
+        if (args[0].startsWith(WINDOW_OPTION)) {
+            final String[] window =
+                    args[0].substring(WINDOW_OPTION.length()).split("-");
+            from = Integer.parseInt(window[0]);
+            to = Integer.parseInt(window[1]);
+            first = 1;
+        }
+
+        int status = 0;
+        for (final String name: Arrays.copyOfRange(args, first, args.length)) {
+            final String base = name.replaceFirst(
+                    "\\" + ARCHIVE_SUFFIX + "$", "");
+            final File gpx = new File(first == 0 ? base + ".gpx"
+                    : String.format("%s-%d-%d.gpx", base, from, to));
+            try (final CompactTrackReader archive =
+                    new CompactTrackReader(new File(name))) {
+                System.out.format("Creating %s...\n", gpx.getAbsoluteFile());
+                if (first == 0)
+                    writeGpx(gpx, archive.getTrackId(),
+                            archive.getTrackBeginTime(), archive.segments());
+                else
+                    try (final PrintStream out = new PrintStream(
+                            new FileOutputStream(gpx))) {
+                        final int count = archive.timeIndex().writeGpx(out,
+                                archive.getTrackId(),
+                                archive.getTrackBeginTime(), from, to);
+                        if (out.checkError())
+                            throw new IOException(
+                                    "Writing " + gpx + " failed");
+                        System.out.format("Processed %d waypoints\n", count);
+                    }
+            }
+
+            catch (final Exception ex) {
+                ex.printStackTrace(System.err);
+                status = 1;
+            }
+        }
+
+        return status;
+    }
+
+    private static void writeGpx(final File gpx, final int trackId,
+            final GregorianCalendar trackTime,
+            final Iterator<TrackSegment> segments) throws IOException {
+        int wpTotal = 0;
+        try (final PrintStream stream = new PrintStream(
+                new FileOutputStream(gpx))) {
+            final GpxWriter out = new GpxWriter(stream, trackTime);
+
+            out.beginTrack(trackId);
+
+            int blockCnt = 0;
+            while (segments.hasNext()) {
+                out.beginTrackSegment();
+                ++blockCnt;
+                final TrackSegment segment = segments.next();
+
+                int wpCount = 0;
+                final Iterator<Waypoint> waypoints = segment.waypoints();
+                while (waypoints.hasNext()) {
+                    ++wpCount;
+                    out.writeWaypoint(waypoints.next());
+                }
+
+                System.out.format("Block %d - %d waypoints\n",
+                        blockCnt, wpCount);
+                wpTotal += wpCount;
+                out.endTrackSegment();
+            }
+
+            out.endTrack();
+            out.close();
+            if (stream.checkError())
+                throw new IOException("Writing " + gpx + " failed");
+        }
+
+        System.out.format("Processed %d waypoints\n", wpTotal);
+    }
 }
\ No newline at end of file
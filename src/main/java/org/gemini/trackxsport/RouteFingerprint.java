@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@code RouteFingerprint} is a decoded {@link Track}, reduced to a list of
+ * shingles for {@link RouteMatcher}.
+ *
+ * <p>The waypoints are first mapped into cells of a square grid, and
+ * consecutive waypoints in the same cell are collapsed into one "run". Each
+ * sequence of {@code k} consecutive runs is then hashed into a shingle. Two
+ * efforts along the same route thus share most of their shingles, regardless
+ * of their speed or sampling rate.
+ *
+ * <p>To tolerate GPS noise, a run only ends once a waypoint is
+ * {@link #HYSTERESIS} cells past the border of its cell, so a track
+ * wandering back and forth over the border stays in the same run. Still, a
+ * track following a border, or cutting a corner, may end up in either of the
+ * cells. Hence the shingles are computed from two grids, the second one
+ * offset by half a cell in both directions, where such a border runs through
+ * the middle of the cells.
+ *
+ * <p>The waypoints of all segments are treated as one continuous stream,
+ * and are indexed 0...{@link #size()}-1.
+ */
+public final class RouteFingerprint {
+
+    /** Share of the cell size a waypoint must be past the border of the
+     * current cell to start a new run. */
+    static final double HYSTERESIS = 0.25;
+
+    private final String key;
+
+    /** Decoded waypoints, column by column. */
+    private final float[] lat, lon;
+    private final int[] time, speed, altitude, heartRate;
+
+    /** Hash of each shingle, and the indices of the first and last
+     * waypoints it covers, ordered by the first waypoint. */
+    private final long[] shingles;
+    private final int[] begin, end;
+
+    public RouteFingerprint(final String key,
+            final Iterator<TrackSegment> segments, final double cellSize,
+            final int k) {
+        final List<Waypoint> waypoints = new ArrayList<>();
+        while (segments.hasNext()) {
+            final Iterator<Waypoint> i = segments.next().waypoints();
+            while (i.hasNext())
+                waypoints.add(i.next());
+        }
+
+        this.key = key;
+        this.lat = new float[waypoints.size()];
+        this.lon = new float[waypoints.size()];
+        this.time = new int[waypoints.size()];
+        this.speed = new int[waypoints.size()];
+        this.altitude = new int[waypoints.size()];
+        this.heartRate = new int[waypoints.size()];
+
+        int elapsed = 0;
+        for (int n = 0; n < waypoints.size(); n++) {
+            final Waypoint wp = waypoints.get(n);
+            lat[n] = wp.getLatitude();
+            lon[n] = wp.getLongitude();
+            time[n] = elapsed += wp.getDelay();
+            speed[n] = wp.getSpeed();
+            altitude[n] = wp.getAltitude();
+            heartRate[n] = wp.getHeartRate();
+        }
+
+        final double cellDegrees = cellSize / GeoUtil.METERS_PER_DEGREE;
+        final List<long[]> list = new ArrayList<>();
+        shingle(list, cellDegrees, 0, k);
+        shingle(list, cellDegrees, 0.5, k);
+        list.sort((a, b) -> Long.compare(a[1], b[1]));
+
+        this.shingles = new long[list.size()];
+        this.begin = new int[list.size()];
+        this.end = new int[list.size()];
+        for (int r = 0; r < list.size(); r++) {
+            shingles[r] = list.get(r)[0];
+            begin[r] = (int) list.get(r)[1];
+            end[r] = (int) list.get(r)[2];
+        }
+    }
+
+    /**
+     * Map the waypoints into runs of the grid offset by {@code offset}
+     * cells, and add the shingles of them to {@code list} as
+     * {hash, first waypoint, last waypoint}.
+     */
+    private void shingle(final List<long[]> list, final double cellDegrees,
+            final double offset, final int k) {
+        final int[] runs = new int[lat.length + 1];
+        final long[] cells = new long[lat.length];
+        int runCount = 0;
+        long row = 0, column = 0;
+        for (int n = 0; n < lat.length; n++) {
+            final double y = lat[n] / cellDegrees + offset;
+            final double x = lon[n] / cellDegrees
+                    * Math.cos(Math.toRadians((row - offset) * cellDegrees))
+                    + offset;
+            if (runCount > 0
+                    && y >= row - HYSTERESIS && y < row + 1 + HYSTERESIS
+                    && x >= column - HYSTERESIS
+                    && x < column + 1 + HYSTERESIS)
+                continue;
+
+            row = (long) Math.floor(y);
+            column = (long) Math.floor(lon[n] / cellDegrees
+                    * Math.cos(Math.toRadians((row - offset) * cellDegrees))
+                    + offset);
+            cells[runCount] = (row << 32) | (column & 0xffffffffL);
+            runs[runCount++] = n;
+        }
+        runs[runCount] = lat.length;
+
+        // Seed the hash with the grid, as the cells of the two grids have
+        // the same numbers.
+        for (int r = 0; r + k <= runCount; r++) {
+            long hash = Double.doubleToLongBits(offset);
+            for (int i = 0; i < k; i++)
+                hash = Long.rotateLeft((hash ^ cells[r + i])
+                        * 0x9e3779b97f4a7c15L, 31);
+            list.add(new long[] { hash, runs[r], runs[r + k] - 1 });
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /** Get number of waypoints. */
+    public int size() {
+        return lat.length;
+    }
+
+    public float getLatitude(final int n) {
+        return lat[n];
+    }
+
+    public float getLongitude(final int n) {
+        return lon[n];
+    }
+
+    /** Get seconds from track begin to waypoint {@code n}. */
+    public int getTime(final int n) {
+        return time[n];
+    }
+
+    public int getSpeed(final int n) {
+        return speed[n];
+    }
+
+    public int getAltitude(final int n) {
+        return altitude[n];
+    }
+
+    public int getHeartRate(final int n) {
+        return heartRate[n];
+    }
+
+    /** Get number of shingles. */
+    int getShingleCount() {
+        return shingles.length;
+    }
+
+    long getShingleHash(final int r) {
+        return shingles[r];
+    }
+
+    /** Get the index of the first waypoint covered by shingle {@code r}. */
+    int getShingleBegin(final int r) {
+        return begin[r];
+    }
+
+    /** Get the index of the last waypoint covered by shingle {@code r}. */
+    int getShingleEnd(final int r) {
+        return end[r];
+    }
+}
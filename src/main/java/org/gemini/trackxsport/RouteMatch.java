@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+/**
+ * {@code RouteMatch} is a range of waypoints in a {@link RouteFingerprint}
+ * found by {@link RouteMatcher} to follow a given route, along with the
+ * statistics of that effort.
+ */
+public final class RouteMatch {
+
+    private final RouteFingerprint route;
+    private final int from, to;
+    private final double deviation;
+
+    private final double length;
+    private final int ascent, maxHeartRate;
+    private final double avgSpeed, avgHeartRate;
+
+    RouteMatch(final RouteFingerprint route, final int from, final int to,
+            final double deviation) {
+        this.route = route;
+        this.from = from;
+        this.to = to;
+        this.deviation = deviation;
+
+        double length = 0, speed = 0, heartRate = 0;
+        int ascent = 0, maxHeartRate = 0;
+        for (int n = from; n <= to; n++) {
+            if (n > from) {
+                length += GeoUtil.distance(
+                        route.getLatitude(n - 1), route.getLongitude(n - 1),
+                        route.getLatitude(n), route.getLongitude(n));
+                ascent += Math.max(0,
+                        route.getAltitude(n) - route.getAltitude(n - 1));
+            }
+            speed += route.getSpeed(n);
+            heartRate += route.getHeartRate(n);
+            maxHeartRate = Math.max(maxHeartRate, route.getHeartRate(n));
+        }
+
+        final int count = to - from + 1;
+        this.length = length;
+        this.ascent = ascent;
+        this.maxHeartRate = maxHeartRate;
+        this.avgSpeed = speed / count;
+        this.avgHeartRate = heartRate / count;
+    }
+
+    public RouteFingerprint getRoute() {
+        return route;
+    }
+
+    /** Get the index of the first waypoint of the effort. */
+    public int getFrom() {
+        return from;
+    }
+
+    /** Get the index of the last waypoint of the effort. */
+    public int getTo() {
+        return to;
+    }
+
+    /** Get the discrete Frechet distance to the searched route, in meters. */
+    public double getDeviation() {
+        return deviation;
+    }
+
+    /** Get the duration of the effort, in seconds. */
+    public int getDuration() {
+        return route.getTime(to) - route.getTime(from);
+    }
+
+    /** Get the distance travelled during the effort, in meters. */
+    public double getLength() {
+        return length;
+    }
+
+    /** Get the total ascent during the effort, in meters. */
+    public int getAscent() {
+        return ascent;
+    }
+
+    /** Get the average speed reported by the device, km/h. */
+    public double getAverageSpeed() {
+        return avgSpeed;
+    }
+
+    public double getAverageHeartRate() {
+        return avgHeartRate;
+    }
+
+    public int getMaxHeartRate() {
+        return maxHeartRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%d..%d]: %ds, %.0fm, +%dm, %.1fkm/h, "
+                + "hr avg %.0f max %d, deviation %.0fm",
+                route.getKey(), from, to, getDuration(), length, ascent,
+                avgSpeed, avgHeartRate, maxHeartRate, deviation);
+    }
+}
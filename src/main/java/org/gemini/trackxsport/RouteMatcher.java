@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * {@code RouteMatcher} finds the efforts along a given route, e.g. a climb,
+ * among a set of tracks.
+ *
+ * <p>Each added track is reduced to a {@link RouteFingerprint}, whose
+ * shingles are kept in an inverted index. When searching, the shingles of
+ * the route are looked up from the index, and the hits are clustered per
+ * track into candidate ranges. The work so far is linear in the number of
+ * hits, instead of in the number of waypoints in the whole archive. Only
+ * the candidates sharing shingles along at least half of the route are then
+ * verified by computing their discrete Frechet distance to the route, in
+ * parallel.
+ *
+ * <p>Tracks must not be added while searching.
+ *
+ * <pre><tt>
+ *  final RouteMatcher matcher = new RouteMatcher();
+ *  for (...)
+ *      matcher.add(name, archive.segments());
+ *  final RouteFingerprint route = matcher.add(name, track.segments());
+ *  for (final RouteMatch match: matcher.find(route, from, to))
+ *      System.out.println(match);
+ * </tt></pre>
+ */
+public final class RouteMatcher {
+
+    /** Default size of the grid cells, in meters. */
+    public static final double DEFAULT_CELL_SIZE = 50;
+
+    /** Default number of consecutive cells in a shingle. */
+    public static final int DEFAULT_SHINGLE_LENGTH = 4;
+
+    /** Default maximum Frechet distance to the route, in meters. */
+    public static final double DEFAULT_TOLERANCE = 50;
+
+    /** Minimum share of route waypoints a candidate must cover with the
+     * shingles it shares with the route. */
+    private static final double MIN_OVERLAP = 0.5;
+
+    /** Maximum length of a candidate relative to the route, in waypoints.
+     * Limits the cost of the verification. */
+    private static final int MAX_STRETCH = 8;
+
+    private final double cellSize;
+    private final int shingleLength;
+    private final double tolerance;
+
+    private final List<RouteFingerprint> routes = new ArrayList<>();
+
+    /** Shingle hash to its occurrences: route index << 32 | shingle index */
+    private final Map<Long, List<Long>> postings = new HashMap<>();
+
+    public RouteMatcher() {
+        this(DEFAULT_CELL_SIZE, DEFAULT_SHINGLE_LENGTH, DEFAULT_TOLERANCE);
+    }
+
+    public RouteMatcher(final double cellSize, final int shingleLength,
+            final double tolerance) {
+        this.cellSize = cellSize;
+        this.shingleLength = shingleLength;
+        this.tolerance = tolerance;
+    }
+
+    /** Fingerprint a track and add it to the index. */
+    public RouteFingerprint add(final String key,
+            final Iterator<TrackSegment> segments) {
+        final RouteFingerprint route = fingerprint(key, segments);
+        final long id = routes.size();
+        routes.add(route);
+
+        for (int r = 0; r < route.getShingleCount(); r++)
+            postings.computeIfAbsent(route.getShingleHash(r),
+                    h -> new ArrayList<>()).add((id << 32) | r);
+
+        return route;
+    }
+
+    /** Fingerprint a track without adding it to the index, e.g. for
+     * searching. */
+    public RouteFingerprint fingerprint(final String key,
+            final Iterator<TrackSegment> segments) {
+        return new RouteFingerprint(key, segments, cellSize, shingleLength);
+    }
+
+    /**
+     * Find the efforts along waypoints {@code from}...{@code to} of
+     * {@code query} in the added tracks. The range itself is not reported.
+     *
+     * @return the matches, fastest effort first.
+     */
+    public List<RouteMatch> find(final RouteFingerprint query,
+            final int from, final int to) {
+        final List<Integer> shingles = new ArrayList<>();
+        for (int r = 0; r < query.getShingleCount(); r++)
+            if (query.getShingleBegin(r) >= from
+                    && query.getShingleEnd(r) <= to)
+                shingles.add(r);
+
+        if (shingles.isEmpty())
+            return new ArrayList<>();
+
+        // Route index -> hits as shingle index << 32 | query shingle no.
+        final Map<Integer, List<Long>> hits = new HashMap<>();
+        for (int q = 0; q < shingles.size(); q++) {
+            final List<Long> occurrences = postings.get(
+                    query.getShingleHash(shingles.get(q)));
+            if (occurrences == null)
+                continue;
+
+            for (final long occurrence: occurrences)
+                hits.computeIfAbsent((int) (occurrence >>> 32),
+                        id -> new ArrayList<>())
+                    .add((occurrence << 32) | q);
+        }
+
+        final int maxGap = shingles.size() / 2 + shingleLength;
+        final List<int[]> candidates = new ArrayList<>();
+        for (final Map.Entry<Integer, List<Long>> entry: hits.entrySet()) {
+            final List<Long> list = entry.getValue();
+            list.sort(null);
+
+            final BitSet matched = new BitSet(to - from + 1);
+            int first = 0;
+            for (int i = 0; i <= list.size(); i++) {
+                // A new cluster begins after a gap, or when the track
+                // starts over the route, e.g. on the next lap.
+                if (i > 0 && (i == list.size()
+                        || shingle(list.get(i)) - shingle(list.get(i - 1))
+                            > maxGap
+                        || query(list.get(i - 1)) - query(list.get(i))
+                            > maxGap)) {
+                    if (matched.cardinality()
+                            >= MIN_OVERLAP * (to - from + 1))
+                        candidates.add(new int[] { entry.getKey(),
+                            shingle(list.get(first)),
+                            shingle(list.get(i - 1)),
+                            shingles.get(query(list.get(first))),
+                            shingles.get(query(list.get(i - 1))) });
+                    matched.clear();
+                    first = i;
+                }
+
+                if (i < list.size()) {
+                    final int r = shingles.get(query(list.get(i)));
+                    matched.set(query.getShingleBegin(r) - from,
+                            query.getShingleEnd(r) - from + 1);
+                }
+            }
+        }
+
+        return candidates.parallelStream()
+                .map(c -> verify(query, from, to, c[3], c[4],
+                        routes.get(c[0]), c[1], c[2]))
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparingInt(RouteMatch::getDuration))
+                .collect(Collectors.toList());
+    }
+
+    private static int shingle(final long hit) {
+        return (int) (hit >>> 32);
+    }
+
+    private static int query(final long hit) {
+        return (int) hit;
+    }
+
+    /**
+     * Trim the candidate, where shingles {@code first}...{@code last} of
+     * {@code route} matched shingles {@code qFirst}...{@code qLast} of the
+     * query, to the waypoints closest to the ends of the query. Then check
+     * its distance to the query.
+     */
+    private RouteMatch verify(final RouteFingerprint query, final int from,
+            final int to, final int qFirst, final int qLast,
+            final RouteFingerprint route, final int first, final int last) {
+        // Allow for the unmatched waypoints at the ends of the query,
+        // twice as many of them in the candidate.
+        final int head = 2 * (query.getShingleBegin(qFirst) - from) + 1;
+        final int tail = 2 * (to - query.getShingleEnd(qLast)) + 1;
+        final int start = closest(route,
+                Math.max(0, route.getShingleBegin(first) - head),
+                route.getShingleEnd(first), query, from);
+        final int stop = closest(route,
+                Math.max(start, route.getShingleBegin(last)),
+                Math.min(route.size() - 1, route.getShingleEnd(last) + tail),
+                query, to);
+        if (route == query && start <= to && stop >= from)
+            return null;
+        if (stop - start + 1 > MAX_STRETCH * (to - from + 1)
+                || to - from + 1 > MAX_STRETCH * (stop - start + 1))
+            return null;
+
+        final double deviation = frechet(query, from, to, route, start, stop);
+        return deviation <= tolerance
+                ? new RouteMatch(route, start, stop, deviation) : null;
+    }
+
+    private static int closest(final RouteFingerprint route, final int begin,
+            final int end, final RouteFingerprint query, final int n) {
+        int result = begin;
+        double min = Double.MAX_VALUE;
+        for (int i = begin; i <= end; i++) {
+            final double d = distance(route, i, query, n);
+            if (d < min) {
+                min = d;
+                result = i;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Compute the discrete Frechet distance between the two ranges of
+     * waypoints, keeping only two rows of the dynamic programming table.
+     */
+    static double frechet(final RouteFingerprint p, final int pFrom,
+            final int pTo, final RouteFingerprint q, final int qFrom,
+            final int qTo) {
+        final int m = qTo - qFrom + 1;
+        double[] previous = new double[m];
+        double[] current = new double[m];
+
+        for (int i = pFrom; i <= pTo; i++) {
+            for (int j = 0; j < m; j++) {
+                final double d = distance(p, i, q, qFrom + j);
+                if (i == pFrom && j == 0)
+                    current[j] = d;
+                else if (i == pFrom)
+                    current[j] = Math.max(current[j - 1], d);
+                else if (j == 0)
+                    current[j] = Math.max(previous[j], d);
+                else
+                    current[j] = Math.max(Math.min(previous[j],
+                            Math.min(previous[j - 1], current[j - 1])), d);
+            }
+
+            final double[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return previous[m - 1];
+    }
+
+    private static double distance(final RouteFingerprint p, final int i,
+            final RouteFingerprint q, final int j) {
+        return GeoUtil.distance(p.getLatitude(i), p.getLongitude(i),
+                q.getLatitude(j), q.getLongitude(j));
+    }
+}
@@ -125,6 +125,23 @@ public final class TrackSegment {
         return data[offset + WAYPOINT_COUNT];
     }
 
+    /**
+     * Get number of {@link Waypoint Waypoints} actually available through
+     * {@link #waypoints()} and {@link #getWaypoint(int)}. Unlike
+     * {@link #getWaypointCount()}, this is derived from the segment length.
+     */
+    public final int countWaypoints() {
+        return Math.max(0, (length - WAYPOINTS - 1) / Waypoint.SIZE);
+    }
+
+    /** Get the {@code i}'th {@link Waypoint}, 0...countWaypoints()-1 */
+    public final Waypoint getWaypoint(final int i) {
+        if (i < 0 || i >= countWaypoints())
+            throw new IndexOutOfBoundsException(String.valueOf(i));
+
+        return new Waypoint(data, offset + WAYPOINTS + i * Waypoint.SIZE);
+    }
+
     /**
      * Get an iterator to the ordered {@link Waypoint Waypoints} held by this
      * segment.
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@code TrackTimeIndex} maps the time elapsed since the beginning of a
+ * {@link Track} to its {@link Waypoint Waypoints}. The device only tells
+ * the delay from the previous waypoint (see {@link Waypoint#getDelay()}),
+ * so without an index, the time of a waypoint is known only after
+ * summing up all the delays before it.
+ *
+ * <p>The index keeps the cumulative time at the end of each segment, and
+ * for the segments actually visited, the cumulative time of each waypoint.
+ * Both are binary searched, so seeking costs O(log n) regardless of the
+ * position within the track.
+ *
+ * <p>An index for an archived track is obtained with
+ * {@link CompactTrackReader#timeIndex()}, in which case the segments are
+ * decoded only when they're visited. Otherwise, e.g:
+ *
+ * <pre><tt>
+ *  final Track track = ...
+ *  final TrackTimeIndex index = TrackTimeIndex.of(track.segments());
+ *  index.writeGpx(out, track.getTrackId(), beginTime, 30 * 60, 45 * 60);
+ * </tt></pre>
+ */
+public final class TrackTimeIndex {
+
+    private final CompactTrackReader reader;
+    private final TrackSegment[] segments;
+
+    /** Seconds from track begin to the last waypoint of each segment. */
+    private final int[] ends;
+
+    /** Seconds from track begin to each waypoint, per visited segment. */
+    private final int[][] times;
+
+    public static TrackTimeIndex of(final Iterator<TrackSegment> segments) {
+        final List<TrackSegment> list = new ArrayList<>();
+        final List<Integer> ends = new ArrayList<>();
+        int time = 0;
+        while (segments.hasNext()) {
+            final TrackSegment segment = segments.next();
+            final Iterator<Waypoint> waypoints = segment.waypoints();
+            while (waypoints.hasNext())
+                time += waypoints.next().getDelay();
+
+            list.add(segment);
+            ends.add(time);
+        }
+
+        final int[] result = new int[ends.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ends.get(i);
+
+        return new TrackTimeIndex(null,
+                list.toArray(new TrackSegment[list.size()]), result);
+    }
+
+    TrackTimeIndex(final CompactTrackReader reader,
+            final TrackSegment[] segments, final int[] ends) {
+        this.reader = reader;
+        this.segments = segments;
+        this.ends = ends;
+        this.times = new int[ends.length][];
+    }
+
+    /** Get the time from track begin to the last waypoint, in seconds. */
+    public int getDuration() {
+        return ends.length > 0 ? ends[ends.length - 1] : 0;
+    }
+
+    public int getSegmentCount() {
+        return ends.length;
+    }
+
+    public TrackSegment getSegment(final int i) throws IOException {
+        if (segments[i] == null)
+            segments[i] = reader.segment(i);
+
+        return segments[i];
+    }
+
+    /**
+     * Find the first segment having waypoints at or after {@code seconds}
+     * from the track begin, or {@link #getSegmentCount()} if there's none.
+     */
+    public int findSegment(final int seconds) {
+        return lowerBound(ends, seconds);
+    }
+
+    /**
+     * Find the first waypoint of segment {@code i} at or after
+     * {@code seconds} from the track begin, or the number of waypoints in
+     * the segment if there's none.
+     */
+    public int findWaypoint(final int i, final int seconds)
+            throws IOException {
+        final int[] waypointTimes = getWaypointTimes(i);
+        return lowerBound(waypointTimes, seconds);
+    }
+
+    /** Get the time of each waypoint of segment {@code i} from the track
+     * begin, in seconds. */
+    public int[] getWaypointTimes(final int i) throws IOException {
+        if (times[i] == null) {
+            final TrackSegment segment = getSegment(i);
+            final int[] result = new int[segment.countWaypoints()];
+            int time = i > 0 ? ends[i - 1] : 0;
+            for (int n = 0; n < result.length; n++)
+                result[n] = time += segment.getWaypoint(n).getDelay();
+
+            times[i] = result;
+        }
+
+        return times[i];
+    }
+
+    /**
+     * Write waypoints from {@code from} to {@code to} seconds (inclusive)
+     * from the track begin as GPX. Only the segments within the window
+     * are visited.
+     *
+     * @param out stream to write the GPX to.
+     * @param trackId track identifier.
+     * @param beginTime begin time of the whole track, not modified.
+     * @param from begin of the window, in seconds from track begin.
+     * @param to end of the window, in seconds from track begin.
+     * @return number of waypoints written.
+     */
+    public int writeGpx(final PrintStream out, final int trackId,
+            final GregorianCalendar beginTime, final int from, final int to)
+            throws IOException {
+        int i = findSegment(from);
+        int n = i < ends.length ? findWaypoint(i, from) : 0;
+        while (i < ends.length && n >= getWaypointTimes(i).length) {
+            ++i;
+            n = 0;
+        }
+
+        final GregorianCalendar time = (GregorianCalendar) beginTime.clone();
+        if (i < ends.length)
+            time.add(GregorianCalendar.SECOND, getWaypointTimes(i)[n]
+                    - getSegment(i).getWaypoint(n).getDelay());
+        else
+            time.add(GregorianCalendar.SECOND, from);
+
+        final GpxWriter gpx = new GpxWriter(out, time);
+        gpx.beginTrack(trackId);
+
+        int count = 0;
+        for (; i < ends.length; i++, n = 0) {
+            if (i > 0 && ends[i - 1] > to)
+                break;
+
+            final int[] waypointTimes = getWaypointTimes(i);
+            if (n >= waypointTimes.length)
+                continue;
+            if (waypointTimes[n] > to)
+                break;
+
+            final TrackSegment segment = getSegment(i);
+            gpx.beginTrackSegment();
+            for (; n < waypointTimes.length && waypointTimes[n] <= to; n++) {
+                gpx.writeWaypoint(segment.getWaypoint(n));
+                ++count;
+            }
+            gpx.endTrackSegment();
+        }
+
+        gpx.endTrack();
+        gpx.close();
+
+        return count;
+    }
+
+    /** Find the first index of {@code values} not less than {@code key}. */
+    private static int lowerBound(final int[] values, final int key) {
+        int low = 0, high = values.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (values[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@code WaypointStore} is a file-backed, columnar store of decoded
+ * {@link Waypoint Waypoints} from any number of tracks, for ad-hoc queries
+ * such as "max heart rate above 1000 m altitude last month":
+ *
+ * <pre><tt>
+ *  try (final WaypointStore store = new WaypointStore(file)) {
+ *      final double maxHr = store.query()
+ *              .where(Column.ALTITUDE, 1000, Double.POSITIVE_INFINITY)
+ *              .where(Column.TIME, from, to)
+ *              .aggregate(Aggregation.MAX, Column.HEARTRATE);
+ *  }
+ * </tt></pre>
+ *
+ * <p>Ingested waypoints are buffered, and written in blocks of
+ * {@link #BLOCK_ROWS} rows, sorted by time. Each block stores its rows
+ * column by column, and begins with the minimum and maximum value of each
+ * column (a "zone map"). Only the zone maps are held in memory. A query
+ * skips the blocks whose zone maps exclude its predicates, reads only the
+ * columns it needs from the rest, and scans the blocks in parallel.
+ *
+ * <p>The file is a sequence of blocks. All values are little endian:
+ * <pre><tt>
+ *  | offset | type      | description
+ *  |--------|-----------|------------------------
+ *  | 0x00   | byte[4]   | fixed "TXWB"
+ *  | 0x04   | int32     | number of rows, n
+ *  | 0x08   | float64[] | minimum and maximum of each {@link Column}
+ *  | 0x88   |           | values of each column, n of each, see
+ *  |                      {@link Column}.
+ * </tt></pre>
+ *
+ * <p>The same track ingested twice is stored twice. Ingesting and querying
+ * may take place concurrently.
+ */
+public final class WaypointStore implements Closeable {
+
+    /** Columns of the store. */
+    public enum Column {
+
+        /** Track identifier, int32. */
+        TRACK(4),
+
+        /** Segment number, int32. */
+        SEGMENT(4),
+
+        /** Time of the waypoint, milliseconds since epoch, int64. */
+        TIME(8),
+
+        /** Latitude in degrees, float32. */
+        LATITUDE(4),
+
+        /** Longitude in degrees, float32. */
+        LONGITUDE(4),
+
+        /** Speed, km/h, int32. */
+        SPEED(4),
+
+        /** Altitude in meters, int32. */
+        ALTITUDE(4),
+
+        /** Heart rate, 1/min, int32. */
+        HEARTRATE(4);
+
+        private final int width;
+
+        Column(final int width) {
+            this.width = width;
+        }
+
+        double get(final ByteBuffer values, final int row) {
+            switch (this) {
+                case TIME:
+                    return values.getLong(row * width);
+                case LATITUDE:
+                case LONGITUDE:
+                    return values.getFloat(row * width);
+                default:
+                    return values.getInt(row * width);
+            }
+        }
+    }
+
+    /** Aggregate functions of {@link Query#aggregate}. */
+    public enum Aggregation {
+        COUNT, SUM, MIN, MAX, AVG
+    }
+
+    /** Number of rows in a full block. */
+    public static final int BLOCK_ROWS = 0x10000;
+
+    private static final byte[] MAGIC = { 'T', 'X', 'W', 'B' };
+
+    private static final int
+            BLOCK_ROWS_OFFS = 0x04,
+            BLOCK_ZONES_OFFS = 0x08,
+            BLOCK_HEADER_LEN = BLOCK_ZONES_OFFS
+                + Column.values().length * 2 * 8,
+            ROW_WIDTH = rowWidth();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final List<Block> blocks = new ArrayList<>();
+    private long end;
+
+    /** Rows not yet written, by column. */
+    private final long[][] buffer =
+            new long[Column.values().length][BLOCK_ROWS];
+    private int buffered;
+
+    /**
+     * Open the store, creating {@code file} if it doesn't exist. The zone
+     * maps of existing blocks are read; an incomplete last block, e.g.
+     * due to a crash while writing it, is discarded.
+     *
+     * @throws IOException if {@code file} isn't empty, but doesn't begin
+     *      with a complete block, e.g. isn't a store at all.
+     */
+    public WaypointStore(final File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+
+        try {
+            final long length = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_LEN)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (end < length) {
+                Block block = null;
+                if (end + BLOCK_HEADER_LEN <= length) {
+                    header.clear();
+                    readFully(header, end);
+                    if (isValid(header))
+                        block = new Block(end, header);
+                }
+
+                if (block == null || end + block.length() > length) {
+                    if (blocks.isEmpty())
+                        throw new IOException("Not a waypoint store: "
+                                + file);
+                    break;
+                }
+
+                blocks.add(block);
+                end += block.length();
+            }
+
+            if (end < length)
+                channel.truncate(end);
+        }
+
+        catch (final IOException | RuntimeException ex) {
+            this.file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Add the waypoints of a track. Rows are written a block at a time,
+     * the last partial block on {@link #flush()} or {@link #close()}.
+     *
+     * @param beginTime begin time of the track, not modified.
+     * @return number of waypoints added.
+     */
+    public int ingest(final int trackId, final GregorianCalendar beginTime,
+            final Iterator<TrackSegment> segments) throws IOException {
+        long time = beginTime.getTimeInMillis();
+        int count = 0;
+        synchronized (buffer) {
+            while (segments.hasNext()) {
+                final TrackSegment segment = segments.next();
+                final Iterator<Waypoint> waypoints = segment.waypoints();
+                while (waypoints.hasNext()) {
+                    final Waypoint wp = waypoints.next();
+                    time += wp.getDelay() * 1000L;
+
+                    buffer[Column.TRACK.ordinal()][buffered] = trackId;
+                    buffer[Column.SEGMENT.ordinal()][buffered] =
+                            segment.getSegmentNo();
+                    buffer[Column.TIME.ordinal()][buffered] = time;
+                    buffer[Column.LATITUDE.ordinal()][buffered] =
+                            Float.floatToIntBits(wp.getLatitude());
+                    buffer[Column.LONGITUDE.ordinal()][buffered] =
+                            Float.floatToIntBits(wp.getLongitude());
+                    buffer[Column.SPEED.ordinal()][buffered] = wp.getSpeed();
+                    buffer[Column.ALTITUDE.ordinal()][buffered] =
+                            wp.getAltitude();
+                    buffer[Column.HEARTRATE.ordinal()][buffered] =
+                            wp.getHeartRate();
+                    if (++buffered == BLOCK_ROWS)
+                        flush();
+                    ++count;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /** Write the buffered rows, if any, as a block. */
+    public void flush() throws IOException {
+        synchronized (buffer) {
+            if (buffered == 0)
+                return;
+
+            final Integer[] order = new Integer[buffered];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            final long[] times = buffer[Column.TIME.ordinal()];
+            Arrays.sort(order, Comparator.comparingLong(i -> times[i]));
+
+            final ByteBuffer block = ByteBuffer.allocate(
+                    BLOCK_HEADER_LEN + buffered * ROW_WIDTH)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            block.put(MAGIC).putInt(buffered);
+            block.position(BLOCK_HEADER_LEN);
+
+            final double[] zones = new double[Column.values().length * 2];
+            for (final Column column: Column.values()) {
+                final long[] values = buffer[column.ordinal()];
+                final ByteBuffer slice = block.slice()
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for (final int i: order)
+                    if (column.width == 8)
+                        slice.putLong(values[i]);
+                    else
+                        slice.putInt((int) values[i]);
+
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int row = 0; row < buffered; row++) {
+                    final double value = column.get(slice, row);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                zones[column.ordinal() * 2] = min;
+                zones[column.ordinal() * 2 + 1] = max;
+
+                block.position(block.position() + buffered * column.width);
+            }
+
+            block.position(BLOCK_ZONES_OFFS);
+            for (final double zone: zones)
+                block.putDouble(zone);
+            block.clear();
+
+            final long offset = end;
+            while (block.hasRemaining())
+                channel.write(block, offset + block.position());
+            block.clear();
+
+            synchronized (blocks) {
+                blocks.add(new Block(offset, block));
+                end += block.capacity();
+            }
+            buffered = 0;
+        }
+    }
+
+    /** Flush the buffered rows, and close the file. */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+
+        finally {
+            file.close();
+        }
+    }
+
+    /** Get the number of rows written, excluding buffered ones. */
+    public long size() {
+        long rows = 0;
+        for (final Block block: snapshot())
+            rows += block.rows;
+
+        return rows;
+    }
+
+    /** Start a query over the rows written so far. */
+    public Query query() {
+        return new Query();
+    }
+
+    /**
+     * {@code Query} is a conjunction of range predicates over the columns,
+     * and an aggregate over the matching rows.
+     */
+    public final class Query {
+
+        private final List<Column> columns = new ArrayList<>();
+        private final List<double[]> ranges = new ArrayList<>();
+
+        private Query() {
+        }
+
+        /** Require {@code min <= column <= max}. */
+        public Query where(final Column column, final double min,
+                final double max) {
+            columns.add(column);
+            ranges.add(new double[] { min, max });
+            return this;
+        }
+
+        /**
+         * Compute an aggregate of {@code column} over the matching rows.
+         *
+         * @return the value; {@code NaN} if no rows match, except for
+         *      {@link Aggregation#COUNT} and {@link Aggregation#SUM}.
+         */
+        public double aggregate(final Aggregation aggregation,
+                final Column column) throws IOException {
+            final double[] result;
+            try {
+                result = snapshot().parallelStream()
+                        .filter(this::mayMatch)
+                        .map(block -> scan(block, aggregation, column))
+                        .reduce(new double[] {
+                            0, 0, Double.NaN, Double.NaN },
+                            WaypointStore::combine);
+            } catch (final UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+
+            switch (aggregation) {
+                case COUNT:
+                    return result[0];
+                case SUM:
+                    return result[1];
+                case MIN:
+                    return result[2];
+                case MAX:
+                    return result[3];
+                default:
+                    return result[0] > 0 ? result[1] / result[0] : Double.NaN;
+            }
+        }
+
+        /** Get the number of matching rows. */
+        public long count() throws IOException {
+            return (long) aggregate(Aggregation.COUNT, Column.TIME);
+        }
+
+        private boolean mayMatch(final Block block) {
+            for (int i = 0; i < columns.size(); i++)
+                if (block.max(columns.get(i)) < ranges.get(i)[0]
+                        || block.min(columns.get(i)) > ranges.get(i)[1])
+                    return false;
+
+            return true;
+        }
+
+        private boolean matchesAll(final Block block) {
+            for (int i = 0; i < columns.size(); i++)
+                if (block.min(columns.get(i)) < ranges.get(i)[0]
+                        || block.max(columns.get(i)) > ranges.get(i)[1])
+                    return false;
+
+            return true;
+        }
+
+        /**
+         * Scan a block, reading only the needed columns.
+         *
+         * @return count, sum, min and max of the matching values.
+         */
+        private double[] scan(final Block block,
+                final Aggregation aggregation, final Column column) {
+            try {
+                final boolean all = matchesAll(block);
+                if (all && aggregation != Aggregation.SUM
+                        && aggregation != Aggregation.AVG)
+                    return new double[] { block.rows, 0,
+                        block.min(column), block.max(column) };
+
+                final ByteBuffer values = aggregation == Aggregation.COUNT
+                        ? null : block.read(column);
+                final ByteBuffer[] predicates =
+                        new ByteBuffer[columns.size()];
+                for (int i = 0; !all && i < predicates.length; i++)
+                    predicates[i] = columns.get(i) == column && values != null
+                            ? values : block.read(columns.get(i));
+
+                final double[] result = { 0, 0, Double.NaN, Double.NaN };
+                rows:
+                for (int row = 0; row < block.rows; row++) {
+                    for (int i = 0; !all && i < predicates.length; i++) {
+                        final double value = columns.get(i)
+                                .get(predicates[i], row);
+                        if (value < ranges.get(i)[0]
+                                || value > ranges.get(i)[1])
+                            continue rows;
+                    }
+
+                    ++result[0];
+                    if (values != null) {
+                        final double value = column.get(values, row);
+                        result[1] += value;
+                        result[2] = result[0] == 1
+                                ? value : Math.min(result[2], value);
+                        result[3] = result[0] == 1
+                                ? value : Math.max(result[3], value);
+                    }
+                }
+
+                return result;
+            }
+
+            catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /** Zone map and location of a block. */
+    private final class Block {
+
+        private final long offset;
+        private final int rows;
+        private final double[] zones = new double[Column.values().length * 2];
+
+        Block(final long offset, final ByteBuffer header) {
+            this.offset = offset;
+            this.rows = header.getInt(BLOCK_ROWS_OFFS);
+            for (int i = 0; i < zones.length; i++)
+                zones[i] = header.getDouble(BLOCK_ZONES_OFFS + i * 8);
+        }
+
+        long length() {
+            return BLOCK_HEADER_LEN + (long) rows * ROW_WIDTH;
+        }
+
+        double min(final Column column) {
+            return zones[column.ordinal() * 2];
+        }
+
+        double max(final Column column) {
+            return zones[column.ordinal() * 2 + 1];
+        }
+
+        ByteBuffer read(final Column column) throws IOException {
+            long position = offset + BLOCK_HEADER_LEN;
+            for (final Column c: Column.values()) {
+                if (c == column)
+                    break;
+                position += (long) rows * c.width;
+            }
+
+            final ByteBuffer values = ByteBuffer.allocate(rows * column.width)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(values, position);
+            values.clear();
+            return values;
+        }
+    }
+
+    private static boolean isValid(final ByteBuffer header) {
+        for (int i = 0; i < MAGIC.length; i++)
+            if (header.get(i) != MAGIC[i])
+                return false;
+
+        final int rows = header.getInt(BLOCK_ROWS_OFFS);
+        return rows > 0 && rows <= BLOCK_ROWS;
+    }
+
+    private static double[] combine(final double[] a, final double[] b) {
+        if (a[0] == 0)
+            return b;
+        if (b[0] == 0)
+            return a;
+
+        return new double[] { a[0] + b[0], a[1] + b[1],
+            Math.min(a[2], b[2]), Math.max(a[3], b[3]) };
+    }
+
+    private List<Block> snapshot() {
+        synchronized (blocks) {
+            return new ArrayList<>(blocks);
+        }
+    }
+
+    private void readFully(final ByteBuffer target, final long position)
+            throws IOException {
+        while (target.hasRemaining())
+            if (channel.read(target, position + target.position()) < 0)
+                throw new IOException("Unexpected end of file");
+    }
+
+    private static int rowWidth() {
+        int width = 0;
+        for (final Column column: Column.values())
+            width += column.width;
+
+        return width;
+    }
+}
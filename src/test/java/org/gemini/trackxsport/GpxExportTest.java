@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class GpxExportTest {
+
+    private static final int TRACK_ID = 5;
+
+    private static final GregorianCalendar BEGIN_TIME =
+            new GregorianCalendar(2016, GregorianCalendar.AUGUST, 1, 6, 0, 0);
+
+    /** Waypoints of the segments used, the last one growing. */
+    private final double[][][] waypoints = {
+        waypoints(1, 100), waypoints(2, 50), waypoints(3, 200) };
+
+    private final File gpx;
+
+    public GpxExportTest() throws IOException {
+        gpx = File.createTempFile("export", ".gpx");
+    }
+
+    @After
+    public void delete() {
+        gpx.delete();
+        new File(gpx.getPath() + GpxExport.STATE_SUFFIX).delete();
+    }
+
+    @Test
+    public void exportsNewTrack() throws IOException {
+        assertExports(3, segments(3, 200));
+    }
+
+    @Test
+    public void appendsSegments() throws IOException {
+        assertExports(2, segments(2, 50));
+        assertExports(1, segments(3, 200));
+    }
+
+    @Test
+    public void appendsWaypoints() throws IOException {
+        assertExports(3, segments(3, 120));
+        assertExports(1, segments(3, 200));
+    }
+
+    @Test
+    public void removesSegments() throws IOException {
+        assertExports(3, segments(3, 200));
+        assertExports(0, segments(2, 50));
+    }
+
+    @Test
+    public void keepsSameTrack() throws IOException {
+        assertExports(3, segments(3, 200));
+        assertExports(0, segments(3, 200));
+    }
+
+    @Test
+    public void rewritesEditedFile() throws IOException {
+        assertExports(2, segments(2, 50));
+        try (final PrintStream out = new PrintStream(
+                new FileOutputStream(gpx, true))) {
+            out.print("<!-- edited -->\n");
+        }
+
+        assertExports(3, segments(3, 200));
+    }
+
+    /**
+     * Export the segments, and check that the result is the same as when
+     * writing the whole track anew.
+     *
+     * @param written the number of segments expected to be written.
+     */
+    private void assertExports(final int written,
+            final TrackSegment[] segments) throws IOException {
+        assertEquals(written, new GpxExport(gpx).export(TRACK_ID,
+                BEGIN_TIME, TestSegments.segments(segments)));
+        assertArrayEquals(segments.length + " segments",
+                write(TestSegments.segments(segments)),
+                Files.readAllBytes(gpx.toPath()));
+    }
+
+    /** Write the track with {@link GpxWriter}, as a whole. */
+    private static byte[] write(final Iterator<TrackSegment> segments) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final PrintStream out = new PrintStream(bytes)) {
+            final GpxWriter writer = new GpxWriter(out,
+                    (GregorianCalendar) BEGIN_TIME.clone())
+                    .beginTrack(TRACK_ID);
+            while (segments.hasNext()) {
+                writer.beginTrackSegment();
+                final Iterator<Waypoint> waypoints =
+                        segments.next().waypoints();
+                while (waypoints.hasNext())
+                    writer.writeWaypoint(waypoints.next());
+                writer.endTrackSegment();
+            }
+
+            writer.endTrack();
+            writer.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /** Get the first {@code count} segments, the last one having
+     * {@code size} waypoints. */
+    private TrackSegment[] segments(final int count, final int size) {
+        final TrackSegment[] result = new TrackSegment[count];
+        for (int s = 0; s < count; s++)
+            result[s] = TestSegments.segment(TRACK_ID, s + 1, s < count - 1
+                    ? waypoints[s] : Arrays.copyOf(waypoints[s], size));
+
+        return result;
+    }
+
+    private static double[][] waypoints(final int seed, final int size) {
+        final Random random = new Random(seed);
+        final double[][] result = new double[size][];
+        for (int n = 0; n < size; n++)
+            result[n] = new double[] {
+                60 + random.nextDouble(), 24 + random.nextDouble(),
+                random.nextInt(40), random.nextInt(300),
+                1 + random.nextInt(5), 90 + random.nextInt(90) };
+
+        return result;
+    }
+}
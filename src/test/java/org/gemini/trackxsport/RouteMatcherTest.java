@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RouteMatcherTest {
+
+    /** Number of waypoints in a route, 10 meters apart. */
+    private static final int SIZE = 300;
+
+    @Test
+    public void findsCopy() {
+        findsNoisyCopy(0);
+    }
+
+    @Test
+    public void findsNoisyCopy() {
+        findsNoisyCopy(5);
+        findsNoisyCopy(10);
+    }
+
+    /** Search a route from tracks holding a copy of it and other routes,
+     * all with random GPS errors of {@code noise} meters. */
+    private static void findsNoisyCopy(final double noise) {
+        for (int seed = 0; seed < 10; seed++) {
+            final Random random = new Random(seed);
+            final double[][] route = route(random);
+            final RouteMatcher matcher = new RouteMatcher();
+            final RouteFingerprint query = matcher.fingerprint("query",
+                    segments(route, noise, random));
+            matcher.add("copy", segments(route, noise, random));
+            for (int i = 0; i < 5; i++)
+                matcher.add("other", segments(route(random), noise, random));
+
+            final List<RouteMatch> matches =
+                    matcher.find(query, 0, SIZE - 1);
+            assertEquals("noise " + noise + "m, seed " + seed,
+                    1, matches.size());
+            assertEquals("copy", matches.get(0).getRoute().getKey());
+        }
+    }
+
+    /** Generate a winding route near Helsinki, as {latitude, longitude}. */
+    private static double[][] route(final Random random) {
+        final double[][] result = new double[SIZE][];
+        double lat = 60.2, lon = 24.9;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        for (int n = 0; n < SIZE; n++) {
+            result[n] = new double[] { lat, lon };
+            heading += random.nextGaussian() * 0.15;
+            lat += 10 * Math.cos(heading) / GeoUtil.METERS_PER_DEGREE;
+            lon += 10 * Math.sin(heading) / GeoUtil.METERS_PER_DEGREE
+                    / Math.cos(Math.toRadians(lat));
+        }
+
+        return result;
+    }
+
+    /** Encode the route as a segment, adding normally distributed errors
+     * of {@code noise} meters to the coordinates. */
+    private static Iterator<TrackSegment> segments(final double[][] route,
+            final double noise, final Random random) {
+        final double degrees = noise / GeoUtil.METERS_PER_DEGREE;
+        final double[][] waypoints = new double[route.length][];
+        for (int n = 0; n < route.length; n++) {
+            final double lat = route[n][0];
+            final double lon = route[n][1] + random.nextGaussian() * degrees
+                    / Math.cos(Math.toRadians(lat));
+            waypoints[n] = new double[] {
+                lat + random.nextGaussian() * degrees, lon, 10, 100, 1, 130 };
+        }
+
+        return TestSegments.segments(
+                TestSegments.segment(1, 1, waypoints));
+    }
+}
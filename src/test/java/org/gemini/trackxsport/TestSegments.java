@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * {@code TestSegments} builds {@link TrackSegment TrackSegments} in the
+ * format sent by the device, for the tests.
+ */
+final class TestSegments {
+
+    /** Indices of the values of a waypoint given to {@link #segment}. */
+    static final int LAT = 0, LON = 1, SPEED = 2, ALTITUDE = 3, DELAY = 4,
+            HEARTRATE = 5;
+
+    private TestSegments() {
+    }
+
+    /**
+     * Build a segment.
+     *
+     * @param waypoints values of each waypoint: latitude, longitude, speed,
+     *      altitude, delay and heart rate.
+     */
+    static TrackSegment segment(final int trackId, final int segmentNo,
+            final double[][] waypoints) {
+        final int length = TrackSegment.WAYPOINTS
+                + waypoints.length * Waypoint.SIZE + 2;
+        final byte[] data = new byte[length];
+        data[0] = 'H';
+        data[1] = 'Y';
+        data[2] = 0x03;
+        data[3] = 0x02;
+        DataUtil.writeUInt16(data, 0x04, length - 8);
+        data[TrackSegment.TRACK_ID] = (byte) trackId;
+        data[TrackSegment.SEGMENT_NO] = (byte) segmentNo;
+        DataUtil.writeUInt16(data, TrackSegment.WAYPOINT_COUNT,
+                waypoints.length);
+
+        for (int n = 0; n < waypoints.length; n++) {
+            final int offset = TrackSegment.WAYPOINTS + n * Waypoint.SIZE;
+            final double[] wp = waypoints[n];
+            DataUtil.writeFloat(data, offset, (float) wp[LON]);
+            DataUtil.writeFloat(data, offset + 4, (float) wp[LAT]);
+            DataUtil.writeUInt16(data, offset + 8, (int) wp[SPEED]);
+            DataUtil.writeUInt16(data, offset + 10, (int) wp[ALTITUDE]);
+            DataUtil.writeUInt16(data, offset + 12, (int) wp[DELAY]);
+            DataUtil.writeUInt16(data, offset + 14, (int) wp[HEARTRATE]);
+        }
+
+        return new TrackSegment(data, 0, length);
+    }
+
+    static Iterator<TrackSegment> segments(final TrackSegment... segments) {
+        return Arrays.asList(segments).iterator();
+    }
+}
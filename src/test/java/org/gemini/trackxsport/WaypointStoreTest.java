@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2016 Jari Ojala (jari.ojala@iki.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gemini.trackxsport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.gemini.trackxsport.WaypointStore.Aggregation;
+import org.gemini.trackxsport.WaypointStore.Column;
+import org.junit.Test;
+
+public class WaypointStoreTest {
+
+    /** Number of tracks ingested by {@link #ingest}. */
+    private static final int TRACKS = 4;
+
+    /** Number of waypoints in each segment ingested by {@link #ingest}. */
+    private static final int SEGMENT_SIZE = 1500;
+
+    @Test
+    public void aggregates() throws IOException {
+        final File file = File.createTempFile("store", ".txw");
+        try {
+            final List<double[]> rows = new ArrayList<>();
+            ingest(file, rows);
+
+            try (final WaypointStore store = new WaypointStore(file)) {
+                assertEquals(rows.size(), store.size());
+
+                final double inf = Double.POSITIVE_INFINITY;
+                assertAggregates(store, rows);
+
+                // Cuts each block partway.
+                assertAggregates(store, rows, Column.ALTITUDE, 200.0, inf);
+
+                // Excludes all blocks but one, which is cut partway.
+                assertAggregates(store, rows, Column.TIME,
+                        (double) begin(2).getTimeInMillis() + 600000,
+                        (double) begin(2).getTimeInMillis() + 1800000);
+
+                // Covers whole blocks, and excludes the others.
+                assertAggregates(store, rows, Column.TRACK, 2.0, 3.0);
+                assertAggregates(store, rows, Column.ALTITUDE, 1000.0, inf,
+                        Column.HEARTRATE, 120.0, 160.0);
+
+                // Matches nothing.
+                assertAggregates(store, rows, Column.TRACK, 9.0, 9.0);
+                assertAggregates(store, rows, Column.ALTITUDE, 240.0, 900.0,
+                        Column.TRACK, 3.0, 3.0);
+            }
+        }
+
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectsOtherFile() throws IOException {
+        final File file = File.createTempFile("store", ".gpx");
+        try {
+            try (final FileOutputStream out = new FileOutputStream(file)) {
+                out.write("<?xml version=\"1.0\"?>\n".getBytes("UTF-8"));
+            }
+
+            assertRejected(file);
+        }
+
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectsEmptyBlock() throws IOException {
+        final File file = File.createTempFile("store", ".txw");
+        try {
+            try (final FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[] { 'T', 'X', 'W', 'B', 0, 0, 0, 0 });
+                out.write(new byte[0x80]);
+            }
+
+            assertRejected(file);
+        }
+
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void discardsIncompleteBlock() throws IOException {
+        final File file = File.createTempFile("store", ".txw");
+        try {
+            try (final WaypointStore store = new WaypointStore(file)) {
+                store.ingest(1, new GregorianCalendar(), segments(10));
+                store.flush();
+                store.ingest(2, new GregorianCalendar(), segments(20));
+            }
+
+            final long length = file.length();
+            try (final RandomAccessFile out =
+                    new RandomAccessFile(file, "rw")) {
+                out.setLength(length - 1);
+            }
+
+            try (final WaypointStore store = new WaypointStore(file)) {
+                assertEquals(10, store.size());
+            }
+        }
+
+        finally {
+            file.delete();
+        }
+    }
+
+    /** Check that opening {@code file} fails, and leaves it intact. */
+    private static void assertRejected(final File file) throws IOException {
+        final long length = file.length();
+        try {
+            new WaypointStore(file).close();
+            fail("Opened " + file);
+        }
+
+        catch (final IOException ex) {
+            assertEquals(length, file.length());
+        }
+    }
+
+    private static Iterator<TrackSegment> segments(final int size) {
+        final double[][] waypoints = new double[size][];
+        for (int n = 0; n < size; n++)
+            waypoints[n] = new double[] { 60.2, 24.9, 0, 0, 1, 0 };
+
+        return TestSegments.segments(
+                TestSegments.segment(1, 1, waypoints));
+    }
+
+    /**
+     * Ingest {@link #TRACKS} tracks of two segments each, a block per
+     * track, and the last track held in the buffer until closing.
+     *
+     * @param rows receives the values of each ingested row, by column.
+     */
+    private static void ingest(final File file, final List<double[]> rows)
+            throws IOException {
+        final Random random = new Random(1);
+        try (final WaypointStore store = new WaypointStore(file)) {
+            for (int track = 1; track <= TRACKS; track++) {
+                final GregorianCalendar begin = begin(track);
+                long time = begin.getTimeInMillis();
+                final TrackSegment[] segments = new TrackSegment[2];
+                for (int s = 0; s < segments.length; s++) {
+                    final double[][] waypoints = new double[SEGMENT_SIZE][];
+                    for (int n = 0; n < waypoints.length; n++) {
+                        // Altitudes of track 3 are all above the others.
+                        final double[] wp = {
+                            (float) (60 + random.nextDouble()),
+                            (float) (24 + random.nextDouble()),
+                            random.nextInt(40),
+                            (track == 3 ? 1000 : 0)
+                                + 150 + 100 * Math.sin(n / 100.0),
+                            1 + random.nextInt(3),
+                            90 + random.nextInt(90) };
+                        waypoints[n] = wp;
+
+                        time += (long) wp[TestSegments.DELAY] * 1000;
+                        final double[] row = new double[Column.values()
+                                .length];
+                        row[Column.TRACK.ordinal()] = track;
+                        row[Column.SEGMENT.ordinal()] = s + 1;
+                        row[Column.TIME.ordinal()] = time;
+                        row[Column.LATITUDE.ordinal()] =
+                                wp[TestSegments.LAT];
+                        row[Column.LONGITUDE.ordinal()] =
+                                wp[TestSegments.LON];
+                        row[Column.SPEED.ordinal()] = wp[TestSegments.SPEED];
+                        row[Column.ALTITUDE.ordinal()] =
+                                (int) wp[TestSegments.ALTITUDE];
+                        row[Column.HEARTRATE.ordinal()] =
+                                wp[TestSegments.HEARTRATE];
+                        rows.add(row);
+                    }
+
+                    segments[s] = TestSegments.segment(track, s + 1,
+                            waypoints);
+                }
+
+                assertEquals(2 * SEGMENT_SIZE, store.ingest(track, begin,
+                        TestSegments.segments(segments)));
+                if (track < TRACKS)
+                    store.flush();
+            }
+        }
+    }
+
+    private static GregorianCalendar begin(final int track) {
+        return new GregorianCalendar(2016, GregorianCalendar.AUGUST, track,
+                6, 0, 0);
+    }
+
+    /**
+     * Check each aggregate of a few columns against a scan of {@code rows}.
+     *
+     * @param predicates the column, minimum and maximum of each predicate.
+     */
+    private static void assertAggregates(final WaypointStore store,
+            final List<double[]> rows, final Object... predicates)
+            throws IOException {
+        for (final Column column: new Column[] {
+                Column.TIME, Column.LATITUDE, Column.ALTITUDE,
+                Column.HEARTRATE }) {
+            double count = 0, sum = 0;
+            double min = Double.NaN, max = Double.NaN;
+            rows:
+            for (final double[] row: rows) {
+                for (int i = 0; i < predicates.length; i += 3) {
+                    final double value =
+                            row[((Column) predicates[i]).ordinal()];
+                    if (value < (double) predicates[i + 1]
+                            || value > (double) predicates[i + 2])
+                        continue rows;
+                }
+
+                final double value = row[column.ordinal()];
+                ++count;
+                sum += value;
+                min = count == 1 ? value : Math.min(min, value);
+                max = count == 1 ? value : Math.max(max, value);
+            }
+
+            final double[] expected = {
+                count, sum, min, max, count > 0 ? sum / count : Double.NaN };
+            for (final Aggregation aggregation: Aggregation.values()) {
+                WaypointStore.Query query = store.query();
+                for (int i = 0; i < predicates.length; i += 3)
+                    query = query.where((Column) predicates[i],
+                            (double) predicates[i + 1],
+                            (double) predicates[i + 2]);
+
+                final double value = expected[aggregation.ordinal()];
+                assertEquals(Arrays.toString(predicates) + " "
+                        + aggregation + " " + column, value,
+                        query.aggregate(aggregation, column),
+                        Math.abs(value) * 1e-12);
+            }
+        }
+    }
+}